@@ -0,0 +1,236 @@
+package com.cs370.places;
+
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of every UpstreamCache, so a restart doesn't begin with empty caches.
+ *
+ * Loading maps the file read-only and checks the CRC and entries straight off the mapping.
+ * Expired entries are dropped; a missing, corrupt or version-mismatched file is logged
+ * and ignored so it can never fail startup.
+ *
+ * Each save writes a new generation file, "<path>.<n>", and then deletes the older ones.
+ * A save never replaces a file that may still be mapped, which Windows refuses until GC
+ * unmaps it; a generation that can't be deleted yet is retried on the next save. Load
+ * uses the newest generation that is valid.
+ *
+ * Layout (big-endian):
+ *   int magic, int version, long writtenAtMillis, int cacheCount
+ *   per cache: short nameLen, name, int entryCount,
+ *              per entry: long expiresAtMillis, int keyLen, key, int valueLen, value
+ *   long crc32 of everything above
+ */
+class CacheSnapshot {
+
+    private static final int MAGIC = 0x43534E50; // "CSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 20;
+
+    private CacheSnapshot() {}
+
+    /**
+     * Writes all caches to a new generation of {@code path} via a temp file and atomic rename,
+     * then removes older generations.
+     */
+    static void save(Path path) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        int entries = 0;
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(UpstreamCache.ALL.size());
+
+            for (UpstreamCache cache : UpstreamCache.ALL) {
+                List<Map.Entry<String, UpstreamCache.Entry>> live = cache.liveEntries();
+                byte[] name = cache.name().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(live.size());
+                for (Map.Entry<String, UpstreamCache.Entry> e : live) {
+                    byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                    byte[] value = e.getValue().value.getBytes(StandardCharsets.UTF_8);
+                    out.writeLong(e.getValue().expiresAtMillis);
+                    out.writeInt(key.length);
+                    out.write(key);
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+                entries += live.size();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+        }
+
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+
+        List<Path> older = generations(path);
+        long generation = System.currentTimeMillis();
+        if (!older.isEmpty()) generation = Math.max(generation, generationOf(older.get(0), path) + 1);
+        Path target = path.resolveSibling(path.getFileName() + "." + generation);
+        Path tmp = path.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+
+        int stale = 0;
+        for (Path old : older) {
+            try {
+                Files.deleteIfExists(old);
+            } catch (IOException e) {
+                // Still mapped (Windows) or locked; the next save tries again
+                stale++;
+            }
+        }
+
+        JsonObject ev = new JsonObject();
+        ev.addProperty("path", target.toString());
+        ev.addProperty("entries", entries);
+        ev.addProperty("bytes", bytes.size());
+        if (stale > 0) ev.addProperty("staleGenerations", stale);
+        StructuredLog.emit("cache_snapshot_saved", ev);
+    }
+
+    /**
+     * Restores unexpired entries from the newest valid generation of {@code path}. Never throws.
+     */
+    static void load(Path path) {
+        JsonObject ev = new JsonObject();
+        ev.addProperty("path", path.toString());
+
+        List<Path> candidates;
+        try {
+            candidates = generations(path);
+        } catch (IOException e) {
+            candidates = new ArrayList<>();
+        }
+        if (candidates.isEmpty()) {
+            ev.addProperty("result", "missing");
+            StructuredLog.emit("cache_snapshot_load", ev);
+            return;
+        }
+
+        for (Path file : candidates) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                int restored = restore(buf);
+                ev.addProperty("result", "ok");
+                ev.addProperty("file", file.getFileName().toString());
+                ev.addProperty("restored", restored);
+                StructuredLog.emit("cache_snapshot_load", ev);
+                return;
+            } catch (Exception e) {
+                // Corrupt, truncated or from another version: try an older one, else start cold
+                ev.addProperty("error", file.getFileName() + ": " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+        ev.addProperty("result", "ignored");
+        StructuredLog.emit("cache_snapshot_load", ev);
+    }
+
+    /**
+     * Existing generations of {@code path}, newest first. A bare file at {@code path} itself,
+     * written before generations existed, sorts last.
+     */
+    private static List<Path> generations(Path path) throws IOException {
+        List<Path> out = new ArrayList<>();
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir == null || !Files.isDirectory(dir)) return out;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                if (generationOf(f, path) >= 0) out.add(f);
+            }
+        }
+        out.sort(Comparator.comparingLong((Path f) -> generationOf(f, path)).reversed());
+        if (Files.isRegularFile(path)) out.add(path);
+        return out;
+    }
+
+    /**
+     * The n in "<path>.<n>", or -1 if {@code file} isn't a generation of {@code path}.
+     */
+    private static long generationOf(Path file, Path path) {
+        String name = file.getFileName().toString();
+        String prefix = path.getFileName() + ".";
+        if (!name.startsWith(prefix) || name.length() == prefix.length()) return -1;
+        for (int i = prefix.length(); i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int restore(ByteBuffer buf) throws IOException {
+        if (buf.capacity() < HEADER_BYTES + 8) throw new IOException("Snapshot too short");
+        if (buf.getInt(0) != MAGIC) throw new IOException("Bad magic");
+        if (buf.getInt(4) != VERSION) throw new IOException("Unsupported version " + buf.getInt(4));
+
+        int bodyEnd = buf.capacity() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(buf.duplicate().position(0).limit(bodyEnd));
+        if (crc.getValue() != buf.getLong(bodyEnd)) throw new IOException("Checksum mismatch");
+
+        // Header: magic and version checked above, writtenAt is informational, then cacheCount
+        ByteBuffer in = buf.duplicate().position(HEADER_BYTES).limit(bodyEnd);
+        int cacheCount = buf.getInt(HEADER_BYTES - 4);
+        long now = System.currentTimeMillis();
+        int restored = 0;
+
+        for (int c = 0; c < cacheCount; c++) {
+            UpstreamCache cache = UpstreamCache.byName(readString(in, in.getShort()));
+            int entryCount = in.getInt();
+            for (int i = 0; i < entryCount; i++) {
+                long expiresAt = in.getLong();
+                int keyLen = in.getInt();
+                // Skip dead entries and unknown caches without decoding them
+                if (cache == null || expiresAt <= now) {
+                    skip(in, keyLen);
+                    int valueLen = in.getInt();
+                    skip(in, valueLen);
+                    continue;
+                }
+                String key = readString(in, keyLen);
+                String value = readString(in, in.getInt());
+                cache.restore(key, value, expiresAt);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    private static void skip(ByteBuffer in, int len) throws IOException {
+        if (len < 0 || len > in.remaining()) throw new IOException("Bad string length " + len);
+        in.position(in.position() + len);
+    }
+
+    private static String readString(ByteBuffer in, int len) throws IOException {
+        if (len < 0 || len > in.remaining()) throw new IOException("Bad string length " + len);
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,66 @@
+package com.cs370.places;
+
+import com.google.gson.JsonObject;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restores the upstream caches from disk at startup, and writes them back
+ * periodically and on shutdown.
+ *
+ * Config:
+ *   CACHE_SNAPSHOT_PATH              snapshot base path, saved as <path>.<generation>
+ *                                    (default: java.io.tmpdir/cab-airport-cache.snap)
+ *   CACHE_SNAPSHOT_INTERVAL_MINUTES  periodic save interval, 0 to save only on shutdown (default 5)
+ */
+public class CacheSnapshotListener implements ServletContextListener {
+
+    private ScheduledExecutorService scheduler;
+    private Path path;
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        String configured = System.getenv("CACHE_SNAPSHOT_PATH");
+        path = (configured == null || configured.isBlank())
+                ? Paths.get(System.getProperty("java.io.tmpdir"), "cab-airport-cache.snap")
+                : Paths.get(configured.trim());
+
+        CacheSnapshot.load(path);
+
+        long interval = EnvConfig.getLong("CACHE_SNAPSHOT_INTERVAL_MINUTES", 5);
+        if (interval > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cache-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::saveQuietly, interval, interval, TimeUnit.MINUTES);
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        saveQuietly();
+    }
+
+    private void saveQuietly() {
+        try {
+            CacheSnapshot.save(path);
+        } catch (Exception e) {
+            JsonObject ev = new JsonObject();
+            ev.addProperty("path", path.toString());
+            ev.addProperty("error", e.getClass().getSimpleName() + ": " + e.getMessage());
+            StructuredLog.emit("cache_snapshot_save_failed", ev);
+        }
+    }
+}
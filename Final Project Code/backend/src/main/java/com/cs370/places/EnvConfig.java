@@ -0,0 +1,44 @@
+package com.cs370.places;
+
+/**
+ * Reads optional numeric/boolean settings from environment variables.
+ * A missing, blank or unparseable value falls back to the default.
+ */
+final class EnvConfig {
+
+    private EnvConfig() {}
+
+    static int getInt(String name, int def) {
+        try {
+            String v = System.getenv(name);
+            return (v == null || v.isBlank()) ? def : Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    static long getLong(String name, long def) {
+        try {
+            String v = System.getenv(name);
+            return (v == null || v.isBlank()) ? def : Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    static double getDouble(String name, double def) {
+        try {
+            String v = System.getenv(name);
+            return (v == null || v.isBlank()) ? def : Double.parseDouble(v.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * True only for "true" (any case); anything else, including unset, is false.
+     */
+    static boolean getBool(String name) {
+        return "true".equalsIgnoreCase(System.getenv(name));
+    }
+}
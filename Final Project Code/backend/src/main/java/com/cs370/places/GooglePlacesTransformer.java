@@ -5,7 +5,10 @@ import java.util.*;
 
 public class GooglePlacesTransformer {
 
-    public static String toSuggestionsJson(String googleJson) {
+    /**
+     * Comma-separated suggestion objects (no enclosing array), so callers can merge in other sources.
+     */
+    public static String toSuggestionItems(String googleJson) {
         List<String> items = new ArrayList<>();
 
         Pattern p = Pattern.compile(
@@ -21,7 +24,7 @@ public class GooglePlacesTransformer {
             items.add("{\"id\":\"" + placeId + "\",\"label\":\"" + label + "\"}");
         }
 
-        return "{\"suggestions\":[" + String.join(",", items) + "]}";
+        return String.join(",", items);
     }
 
     private static String escape(String s) {
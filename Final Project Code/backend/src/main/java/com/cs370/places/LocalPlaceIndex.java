@@ -0,0 +1,394 @@
+package com.cs370.places;
+
+import com.google.gson.JsonObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Offline prefix index over NY/NJ addresses and landmarks.
+ *
+ * First-tier source for PlaceSuggestionServlet: a prefix lookup is a binary search over
+ * a sorted key table, done directly on the buffer without allocating per comparison.
+ * Ids look like "local:jfk-airport" and TripEstimateServlet resolves them to lat/lng
+ * without calling Google.
+ *
+ * The index lives in one read-only ByteBuffer. If LOCAL_PLACE_INDEX points to a prebuilt
+ * .idx file it is memory-mapped (off-heap, no parsing at startup); otherwise the bundled
+ * nyc-places.tsv is compiled into a direct buffer once.
+ *
+ * Build an .idx file with:
+ *   java -cp backend.jar com.cs370.places.LocalPlaceIndex nyc-places.tsv nyc-places.idx
+ *
+ * Binary layout (big-endian):
+ *   int magic, int version, int placeCount, int keyCount
+ *   int[placeCount]    place record offsets, places sorted by id
+ *   int[keyCount * 2]  (key record offset, place index), sorted by key bytes
+ *   place record:      double lat, double lng, short idLen, id, short labelLen, label
+ *   key record:        short len, normalized UTF-8 bytes
+ */
+public class LocalPlaceIndex {
+
+    static final String ID_PREFIX = "local:";
+
+    private static final int MAGIC = 0x4E594349; // "NYCI"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    private static final String BUNDLED_TSV = "/nyc-places.tsv";
+
+    private static volatile LocalPlaceIndex instance;
+
+    private final ByteBuffer buf;
+    private final int placeCount;
+    private final int keyCount;
+    private final int keyTableOffset;
+
+    private LocalPlaceIndex(ByteBuffer buf) throws IOException {
+        if (buf.capacity() < HEADER_BYTES || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IOException("Not a local place index (bad magic or version)");
+        }
+        this.buf = buf;
+        this.placeCount = buf.getInt(8);
+        this.keyCount = buf.getInt(12);
+        this.keyTableOffset = HEADER_BYTES + placeCount * 4;
+        validate();
+    }
+
+    /**
+     * Checks every table entry and record lies inside the buffer, so a truncated or
+     * corrupt file is rejected at load instead of failing on every lookup.
+     */
+    private void validate() throws IOException {
+        int cap = buf.capacity();
+        if (placeCount < 0 || keyCount < 0
+                || HEADER_BYTES + placeCount * 4L + keyCount * 8L > cap) {
+            throw new IOException("Local place index truncated (tables don't fit)");
+        }
+        for (int p = 0; p < placeCount; p++) {
+            int off = buf.getInt(HEADER_BYTES + p * 4);
+            if (off < 0 || !stringFits(off + 16L) || !stringFits(off + 18L + buf.getShort(off + 16))) {
+                throw new IOException("Local place index corrupt (place " + p + ")");
+            }
+        }
+        for (int k = 0; k < keyCount; k++) {
+            int off = buf.getInt(keyTableOffset + k * 8);
+            int place = buf.getInt(keyTableOffset + k * 8 + 4);
+            if (off < 0 || !stringFits(off) || place < 0 || place >= placeCount) {
+                throw new IOException("Local place index corrupt (key " + k + ")");
+            }
+        }
+    }
+
+    /**
+     * Whether a length-prefixed string at {@code off} lies inside the buffer.
+     */
+    private boolean stringFits(long off) {
+        if (off + 2 > buf.capacity()) return false;
+        int len = buf.getShort((int) off);
+        return len >= 0 && off + 2 + len <= buf.capacity();
+    }
+
+    /**
+     * Shared index, loaded on first use. Never null; an empty index if nothing could be loaded.
+     */
+    static LocalPlaceIndex get() {
+        LocalPlaceIndex idx = instance;
+        if (idx == null) {
+            synchronized (LocalPlaceIndex.class) {
+                idx = instance;
+                if (idx == null) {
+                    idx = load();
+                    instance = idx;
+                }
+            }
+        }
+        return idx;
+    }
+
+    private static LocalPlaceIndex load() {
+        String path = System.getenv("LOCAL_PLACE_INDEX");
+        if (path != null && !path.isBlank()) {
+            try (FileChannel ch = FileChannel.open(Paths.get(path.trim()), StandardOpenOption.READ)) {
+                return new LocalPlaceIndex(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            } catch (Exception e) {
+                logFallback(path, "bundled", e);
+            }
+        }
+        try (InputStream in = LocalPlaceIndex.class.getResourceAsStream(BUNDLED_TSV)) {
+            if (in != null) {
+                return new LocalPlaceIndex(build(readTsv(in)));
+            }
+        } catch (Exception e) {
+            logFallback(BUNDLED_TSV, "empty", e);
+        }
+        try {
+            return new LocalPlaceIndex(build(new ArrayList<>()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void logFallback(String source, String fallback, Exception e) {
+        JsonObject ev = new JsonObject();
+        ev.addProperty("source", source);
+        ev.addProperty("fallback", fallback);
+        ev.addProperty("error", e.getClass().getSimpleName() + ": " + e.getMessage());
+        StructuredLog.emit("local_place_index_fallback", ev);
+    }
+
+    // ---------------- lookups ----------------
+
+    /**
+     * Up to {@code limit} places whose label or alias starts with the query.
+     * See isConfident for whether these are enough on their own.
+     */
+    List<String[]> suggest(String query, int limit) {
+        List<String[]> out = new ArrayList<>();
+        byte[] prefix = normalize(query).getBytes(StandardCharsets.UTF_8);
+        if (prefix.length == 0 || keyCount == 0) return out;
+
+        Set<Integer> seen = new LinkedHashSet<>();
+        for (int k = lowerBound(prefix); k < keyCount && seen.size() < limit; k++) {
+            if (compareKey(k, prefix, true) != 0) break;
+            seen.add(buf.getInt(keyTableOffset + k * 8 + 4));
+        }
+
+        for (int place : seen) {
+            int off = buf.getInt(HEADER_BYTES + place * 4) + 16;
+            String id = readString(off);
+            String label = readString(off + 2 + buf.getShort(off));
+            out.add(new String[] { ID_PREFIX + id, label });
+        }
+        return out;
+    }
+
+    /**
+     * Whether local matches for this query are good enough to skip Google: the query equals
+     * a name, label or alias exactly, or every match is the same place and the query covers
+     * at least two thirds of its shortest matching key ("barclays cen" but not "barclays").
+     * Anything else may just as well be the start of a street address.
+     */
+    boolean isConfident(String query) {
+        byte[] prefix = normalize(query).getBytes(StandardCharsets.UTF_8);
+        if (prefix.length == 0) return false;
+
+        int place = -1;
+        int shortestKey = Integer.MAX_VALUE;
+        for (int k = lowerBound(prefix); k < keyCount; k++) {
+            if (compareKey(k, prefix, true) != 0) break;
+            int len = buf.getShort(buf.getInt(keyTableOffset + k * 8));
+            if (len == prefix.length) return true;
+
+            int p = buf.getInt(keyTableOffset + k * 8 + 4);
+            if (place >= 0 && p != place) return false;
+            place = p;
+            shortestKey = Math.min(shortestKey, len);
+        }
+        return place >= 0 && prefix.length * 3 >= shortestKey * 2;
+    }
+
+    /**
+     * Coordinates for a "local:..." id, or null if the id isn't in this index.
+     */
+    double[] latLng(String placeId) {
+        if (placeId == null || !placeId.startsWith(ID_PREFIX)) return null;
+        byte[] id = placeId.substring(ID_PREFIX.length()).getBytes(StandardCharsets.UTF_8);
+
+        int lo = 0;
+        int hi = placeCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int off = buf.getInt(HEADER_BYTES + mid * 4);
+            int cmp = compareBytes(off + 16, id, false);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return new double[] { buf.getDouble(off), buf.getDouble(off + 8) };
+        }
+        return null;
+    }
+
+    int size() {
+        return placeCount;
+    }
+
+    /**
+     * Index of the first key >= prefix.
+     */
+    private int lowerBound(byte[] prefix) {
+        int lo = 0;
+        int hi = keyCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKey(mid, prefix, false) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int compareKey(int k, byte[] prefix, boolean prefixOnly) {
+        return compareBytes(buf.getInt(keyTableOffset + k * 8), prefix, prefixOnly);
+    }
+
+    /**
+     * Compares the length-prefixed string at {@code off} with {@code other}, unsigned byte order.
+     * With prefixOnly, a stored string that merely starts with {@code other} compares equal.
+     */
+    private int compareBytes(int off, byte[] other, boolean prefixOnly) {
+        int len = buf.getShort(off);
+        int n = Math.min(len, other.length);
+        for (int i = 0; i < n; i++) {
+            int a = buf.get(off + 2 + i) & 0xFF;
+            int b = other[i] & 0xFF;
+            if (a != b) return a - b;
+        }
+        if (prefixOnly && len >= other.length) return 0;
+        return len - other.length;
+    }
+
+    private String readString(int off) {
+        byte[] b = new byte[buf.getShort(off)];
+        for (int i = 0; i < b.length; i++) b[i] = buf.get(off + 2 + i);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lowercase, punctuation to spaces, whitespace collapsed. Used for keys and queries alike.
+     */
+    static String normalize(String s) {
+        if (s == null) return "";
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = Character.toLowerCase(s.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0) sb.append(' ');
+                sb.append(c);
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    // ---------------- building ----------------
+
+    /**
+     * Rows of: id, label, lat, lng, aliases ("|" separated, may be empty).
+     */
+    private static List<String[]> readTsv(InputStream in) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) continue;
+                String[] cols = line.split("\t", -1);
+                if (cols.length < 4) continue;
+                rows.add(new String[] {
+                        cols[0].trim(), cols[1].trim(), cols[2].trim(), cols[3].trim(),
+                        cols.length > 4 ? cols[4].trim() : ""
+                });
+            }
+        }
+        return rows;
+    }
+
+    private static ByteBuffer build(List<String[]> rows) throws IOException {
+        rows.sort((a, b) -> compareUtf8(a[0], b[0]));
+
+        // (normalized key, place index); the label, its name part (before the first comma)
+        // and each alias become keys
+        List<Object[]> keys = new ArrayList<>();
+        for (int p = 0; p < rows.size(); p++) {
+            String label = rows.get(p)[1];
+            Set<String> forms = new LinkedHashSet<>();
+            forms.add(normalize(label));
+            forms.add(normalize(label.split(",", 2)[0]));
+            for (String alias : rows.get(p)[4].split("\\|")) forms.add(normalize(alias));
+            for (String f : forms) {
+                if (!f.isEmpty()) keys.add(new Object[] { f, p });
+            }
+        }
+        keys.sort((a, b) -> compareUtf8((String) a[0], (String) b[0]));
+
+        int size = HEADER_BYTES + rows.size() * 4 + keys.size() * 8;
+        for (String[] r : rows) size += 16 + 4 + utf8(r[0]).length + utf8(r[1]).length;
+        for (Object[] k : keys) size += 2 + utf8((String) k[0]).length;
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        buf.putInt(MAGIC).putInt(VERSION).putInt(rows.size()).putInt(keys.size());
+
+        int placeTable = HEADER_BYTES;
+        int keyTable = placeTable + rows.size() * 4;
+        buf.position(keyTable + keys.size() * 8);
+
+        for (int p = 0; p < rows.size(); p++) {
+            String[] r = rows.get(p);
+            buf.putInt(placeTable + p * 4, buf.position());
+            try {
+                buf.putDouble(Double.parseDouble(r[2])).putDouble(Double.parseDouble(r[3]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad coordinates for " + r[0]);
+            }
+            putString(buf, r[0]);
+            putString(buf, r[1]);
+        }
+        for (int k = 0; k < keys.size(); k++) {
+            buf.putInt(keyTable + k * 8, buf.position());
+            buf.putInt(keyTable + k * 8 + 4, (Integer) keys.get(k)[1]);
+            putString(buf, (String) keys.get(k)[0]);
+        }
+
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    private static void putString(ByteBuffer buf, String s) throws IOException {
+        byte[] b = utf8(s);
+        if (b.length > Short.MAX_VALUE) throw new IOException("String too long for index: " + s);
+        buf.putShort((short) b.length).put(b);
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int compareUtf8(String a, String b) {
+        return Arrays.compareUnsigned(utf8(a), utf8(b));
+    }
+
+    /**
+     * Compiles a TSV dataset into a binary index file that LOCAL_PLACE_INDEX can map.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: LocalPlaceIndex <places.tsv> <out.idx>");
+            System.exit(2);
+        }
+        ByteBuffer buf;
+        try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+            buf = build(readTsv(in));
+        }
+        Path out = Paths.get(args[1]);
+        try (FileChannel ch = FileChannel.open(out, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+        System.out.println("Wrote " + out + " (" + Files.size(out) + " bytes)");
+    }
+}
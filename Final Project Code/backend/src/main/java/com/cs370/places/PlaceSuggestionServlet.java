@@ -1,5 +1,7 @@
 package com.cs370.places;
 
+import com.google.gson.JsonObject;
+
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -7,12 +9,13 @@ import javax.servlet.http.HttpServletResponse;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.annotation.WebFilter;
 
@@ -22,6 +25,13 @@ public class PlaceSuggestionServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
     private static final String API_KEY = System.getenv("GOOGLE_MAPS_API_KEY");
+    private static final int MAX_LOCAL_SUGGESTIONS = 5;
+
+    @Override
+    public void init() {
+        // Load the offline index at deploy time rather than on the first keystroke
+        LocalPlaceIndex.get();
+    }
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -34,7 +44,20 @@ public class PlaceSuggestionServlet extends HttpServlet {
             return;
         }
 
+        // First tier: offline NY/NJ index. Answer alone only on a confident match;
+        // otherwise Google's suggestions come first and local ones follow.
+        LocalPlaceIndex index = LocalPlaceIndex.get();
+        List<String[]> local = index.suggest(q, MAX_LOCAL_SUGGESTIONS);
+        if (!local.isEmpty() && index.isConfident(q)) {
+            response.getWriter().print(toSuggestionsJson("", local));
+            return;
+        }
+
         if (API_KEY == null || API_KEY.isBlank()) {
+            if (!local.isEmpty()) {
+                response.getWriter().print(toSuggestionsJson("", local));
+                return;
+            }
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             response.getWriter().print("{\"error\":\"Missing GOOGLE_MAPS_API_KEY\"}");
             return;
@@ -42,21 +65,12 @@ public class PlaceSuggestionServlet extends HttpServlet {
 
        String input = q.trim();
 
-// NEW Places API endpoint
-String googleUrl = "https://places.googleapis.com/v1/places:autocomplete";
-
-HttpURLConnection conn = (HttpURLConnection) new URL(googleUrl).openConnection();
-conn.setRequestMethod("POST");
-conn.setConnectTimeout(5000);
-conn.setReadTimeout(5000);
-conn.setDoOutput(true);
-
-// Required header for new Places API
-conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
-conn.setRequestProperty("X-Goog-Api-Key", API_KEY);
-
-// Ask only for what you need (field mask)
-conn.setRequestProperty("X-Goog-FieldMask", "suggestions.placePrediction.placeId,suggestions.placePrediction.text.text");
+        String cacheKey = LocalPlaceIndex.normalize(input);
+        String cached = UpstreamCache.SUGGESTIONS.get(cacheKey);
+        if (cached != null) {
+            response.getWriter().print(toSuggestionsJson(cached, local));
+            return;
+        }
 
 String payload =
     "{"
@@ -66,31 +80,82 @@ String payload =
   + "\"languageCode\":\"en\""
   + "}";
 
-try (var os = conn.getOutputStream()) {
-    os.write(payload.getBytes(StandardCharsets.UTF_8));
-}
-
-int status = conn.getResponseCode();
-InputStream is = (status >= 200 && status < 300) ? conn.getInputStream() : conn.getErrorStream();
-
+// Idempotent, so a slow autocomplete can be hedged
 String body;
-try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
-    StringBuilder sb = new StringBuilder();
-    String line;
-    while ((line = br.readLine()) != null) sb.append(line);
-    body = sb.toString();
-} finally {
-    conn.disconnect();
+try {
+    body = UpstreamHedger.call("autocomplete", () -> autocomplete(payload));
+} catch (IOException e) {
+    // Typing shouldn't surface errors: answer with whatever the local index had
+    JsonObject ev = new JsonObject();
+    ev.addProperty("error", e.getClass().getSimpleName() + ": " + e.getMessage());
+    StructuredLog.emit("autocomplete_failed", ev);
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getWriter().print(toSuggestionsJson("", local));
+    return;
 }
 
-// TEMP: return raw to verify it works
-String transformed = GooglePlacesTransformer.toSuggestionsJson(body);
+String googleItems = GooglePlacesTransformer.toSuggestionItems(body);
+UpstreamCache.SUGGESTIONS.put(cacheKey, googleItems);
 response.setStatus(HttpServletResponse.SC_OK);
-response.getWriter().print(transformed);
+response.getWriter().print(toSuggestionsJson(googleItems, local));
 
 return;
 
     }
+
+    /**
+     * One places:autocomplete call. Returns the body on 2xx and throws otherwise, so the
+     * hedger only counts real answers as successes.
+     */
+    private static String autocomplete(String payload) throws IOException {
+        // NEW Places API endpoint
+        String googleUrl = "https://places.googleapis.com/v1/places:autocomplete";
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(googleUrl).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(5000);
+        conn.setDoOutput(true);
+
+        // Required header for new Places API
+        conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+        conn.setRequestProperty("X-Goog-Api-Key", API_KEY);
+
+        // Ask only for what you need (field mask)
+        conn.setRequestProperty("X-Goog-FieldMask", "suggestions.placePrediction.placeId,suggestions.placePrediction.text.text");
+
+        try (var os = conn.getOutputStream()) {
+            os.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int status = conn.getResponseCode();
+        if (status < 200 || status >= 300) {
+            conn.disconnect();
+            throw new IOException("Places autocomplete error " + status);
+        }
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) sb.append(line);
+            return sb.toString();
+        } finally {
+            conn.disconnect();
+        }
+    }
+    /**
+     * @param googleItems already-serialized Google items (comma-separated, may be empty), listed first
+     * @param local       local index matches appended after them
+     */
+    private static String toSuggestionsJson(String googleItems, List<String[]> local) {
+        List<String> items = new ArrayList<>();
+        if (!googleItems.isEmpty()) items.add(googleItems);
+        for (String[] s : local) {
+            items.add("{\"id\":" + toJsonString(s[0]) + ",\"label\":" + toJsonString(s[1]) + "}");
+        }
+        return "{\"suggestions\":[" + String.join(",", items) + "]}";
+    }
+
     private static String toJsonString(String s) {
         return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
     }
@@ -0,0 +1,244 @@
+package com.cs370.places;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job that precomputes route durations ahead of predictable peaks.
+ *
+ * TripEstimateServlet reports each completed search (origin, airport, target arrival time,
+ * resulting travel time). Every few minutes, while live traffic is quiet, the job picks the
+ * most common (origin, airport, weekday/weekend, 15-minute arrival slot) patterns of the
+ * last week and, for each one coming up within the lookahead window, fills the routes cache
+ * for the 5-minute departure buckets the binary search converges through. Peak-hour
+ * estimates for those patterns then mostly hit the cache.
+ *
+ * The demand history is kept in memory only, so learning starts over after a restart or
+ * deploy; the route cache itself survives via CacheSnapshot.
+ *
+ * Config:
+ *   PREFETCH_DAILY_QUOTA        max Routes calls per day spent on prefetch, 0 disables (default 300)
+ *   PREFETCH_LOOKAHEAD_HOURS    how far ahead of an arrival slot to start prefetching (default 3)
+ *   PREFETCH_QUIET_MAX_REQUESTS max estimates in the last 5 minutes to still count as quiet (default 5)
+ */
+class PrefetchScheduler {
+
+    /**
+     * One traffic-aware route lookup, cached by the caller.
+     */
+    interface RouteProbe {
+        int durationMinutes(long departMillis, String originKey, String destLatLng) throws IOException;
+    }
+
+    private static final ZoneId ZONE = ZoneId.of("America/New_York");
+
+    private static final int DAILY_QUOTA = EnvConfig.getInt("PREFETCH_DAILY_QUOTA", 300);
+    private static final int LOOKAHEAD_HOURS = EnvConfig.getInt("PREFETCH_LOOKAHEAD_HOURS", 3);
+    private static final int QUIET_MAX_REQUESTS = EnvConfig.getInt("PREFETCH_QUIET_MAX_REQUESTS", 5);
+
+    private static final long MINUTE = 60_000L;
+    private static final long TICK_MINUTES = 10;
+    private static final long HISTORY_MILLIS = 7L * 24 * 60 * MINUTE;
+    private static final long QUIET_WINDOW_MILLIS = 5 * MINUTE;
+    private static final int MAX_HISTORY = 10_000;
+    private static final int TOP_PATTERNS = 20;
+    private static final int MIN_PATTERN_COUNT = 2;
+    private static final int SLOT_MINUTES = 15;
+    private static final long BUCKET_MILLIS = 5 * MINUTE;
+
+    private static class Demand {
+        final long atMillis;
+        final String originKey;
+        final String destLatLng;
+        final boolean weekend;
+        final int slot; // minute of day of the target arrival, rounded down to SLOT_MINUTES
+        final int baseTravelMinutes;
+
+        Demand(long atMillis, String originKey, String destLatLng, boolean weekend, int slot, int baseTravelMinutes) {
+            this.atMillis = atMillis;
+            this.originKey = originKey;
+            this.destLatLng = destLatLng;
+            this.weekend = weekend;
+            this.slot = slot;
+            this.baseTravelMinutes = baseTravelMinutes;
+        }
+    }
+
+    private static class Pattern {
+        final Demand sample;
+        int count;
+        long sumBaseTravelMinutes;
+
+        Pattern(Demand sample) {
+            this.sample = sample;
+        }
+    }
+
+    private final RouteProbe probe;
+    private final Deque<Demand> history = new ArrayDeque<>();
+    private ScheduledExecutorService scheduler;
+
+    // Daily quota accounting, only touched from the scheduler thread
+    private LocalDate quotaDay;
+    private int quotaUsed;
+
+    PrefetchScheduler(RouteProbe probe) {
+        this.probe = probe;
+    }
+
+    void start() {
+        if (DAILY_QUOTA <= 0) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "route-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::tickQuietly, TICK_MINUTES, TICK_MINUTES, TimeUnit.MINUTES);
+    }
+
+    void stop() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+
+    /**
+     * Records one completed estimate search.
+     *
+     * @param targetArrivalMillis arrival the search aimed for (after buffers)
+     */
+    void recordDemand(String originKey, String destLatLng, long targetArrivalMillis, int baseTravelMinutes) {
+        if (DAILY_QUOTA <= 0) return;
+        ZonedDateTime t = Instant.ofEpochMilli(targetArrivalMillis).atZone(ZONE);
+        int slot = (t.getHour() * 60 + t.getMinute()) / SLOT_MINUTES * SLOT_MINUTES;
+
+        Demand d = new Demand(System.currentTimeMillis(), originKey, destLatLng, isWeekend(t), slot, baseTravelMinutes);
+        synchronized (history) {
+            history.addLast(d);
+            while (history.size() > MAX_HISTORY) history.removeFirst();
+        }
+    }
+
+    private void tickQuietly() {
+        try {
+            tick();
+        } catch (Exception e) {
+            // Never let one bad tick cancel the schedule
+            JsonObject ev = new JsonObject();
+            ev.addProperty("error", e.getClass().getSimpleName() + ": " + e.getMessage());
+            StructuredLog.emit("route_prefetch_failed", ev);
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        List<Demand> recent = new ArrayList<>();
+        int lastFiveMinutes = 0;
+        synchronized (history) {
+            while (!history.isEmpty() && history.peekFirst().atMillis < now - HISTORY_MILLIS) history.removeFirst();
+            for (Demand d : history) {
+                recent.add(d);
+                if (d.atMillis >= now - QUIET_WINDOW_MILLIS) lastFiveMinutes++;
+            }
+        }
+
+        // Only spend quota while live traffic is quiet
+        if (lastFiveMinutes > QUIET_MAX_REQUESTS) return;
+
+        LocalDate today = LocalDate.now(ZONE);
+        if (!today.equals(quotaDay)) {
+            quotaDay = today;
+            quotaUsed = 0;
+        }
+
+        int patterns = 0;
+        int calls = 0;
+        int failures = 0;
+        for (Pattern p : topPatterns(recent)) {
+            long target = nextOccurrence(p.sample, now);
+            if (target < 0) continue;
+            patterns++;
+
+            // Buckets the search converges through: around (target - typical travel time)
+            long typical = p.sumBaseTravelMinutes / p.count;
+            long from = target - (typical * 3 / 2 + 15) * MINUTE;
+            long to = target - (typical / 2) * MINUTE;
+
+            for (long bucket = from / BUCKET_MILLIS; bucket <= to / BUCKET_MILLIS; bucket++) {
+                long depart = bucket * BUCKET_MILLIS;
+                if (depart <= now) continue;
+                if (quotaUsed >= DAILY_QUOTA) break;
+                if (UpstreamCache.ROUTES.get(TripEstimateServlet.routesCacheKey(
+                        p.sample.originKey, p.sample.destLatLng, depart)) != null) continue;
+
+                quotaUsed++;
+                calls++;
+                try {
+                    probe.durationMinutes(depart, p.sample.originKey, p.sample.destLatLng);
+                } catch (IOException e) {
+                    failures++;
+                }
+            }
+        }
+
+        if (calls > 0) {
+            JsonObject ev = new JsonObject();
+            ev.addProperty("patterns", patterns);
+            ev.addProperty("calls", calls);
+            ev.addProperty("failures", failures);
+            ev.addProperty("quotaUsed", quotaUsed);
+            ev.addProperty("quota", DAILY_QUOTA);
+            StructuredLog.emit("route_prefetch", ev);
+        }
+    }
+
+    private static List<Pattern> topPatterns(List<Demand> recent) {
+        Map<String, Pattern> byKey = new HashMap<>();
+        for (Demand d : recent) {
+            String key = d.originKey + "|" + d.destLatLng + "|" + d.weekend + "|" + d.slot;
+            Pattern p = byKey.computeIfAbsent(key, k -> new Pattern(d));
+            p.count++;
+            p.sumBaseTravelMinutes += d.baseTravelMinutes;
+        }
+
+        List<Pattern> out = new ArrayList<>();
+        for (Pattern p : byKey.values()) {
+            if (p.count >= MIN_PATTERN_COUNT) out.add(p);
+        }
+        out.sort((a, b) -> Integer.compare(b.count, a.count));
+        return out.size() > TOP_PATTERNS ? out.subList(0, TOP_PATTERNS) : out;
+    }
+
+    /**
+     * Next target arrival for this pattern's slot (same day type) within the lookahead, or -1.
+     */
+    private static long nextOccurrence(Demand d, long now) {
+        ZonedDateTime start = Instant.ofEpochMilli(now).atZone(ZONE);
+        for (int day = 0; day <= 1; day++) {
+            ZonedDateTime t = start.toLocalDate().plusDays(day).atStartOfDay(ZONE).plusMinutes(d.slot);
+            long millis = t.toInstant().toEpochMilli();
+            if (millis > now && millis <= now + LOOKAHEAD_HOURS * 60 * MINUTE && isWeekend(t) == d.weekend) {
+                return millis;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWeekend(ZonedDateTime t) {
+        DayOfWeek dow = t.getDayOfWeek();
+        return dow == DayOfWeek.SATURDAY || dow == DayOfWeek.SUNDAY;
+    }
+}
@@ -0,0 +1,74 @@
+package com.cs370.places;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * End-to-end time budget for one estimate request.
+ *
+ * Every upstream call splits whatever is left of the budget between its connect and
+ * read timeouts, so a single estimate can't block for minutes on stacked 7s timeouts.
+ *
+ * Configure with ESTIMATE_BUDGET_MS (default 20000). Clients may ask for a shorter
+ * budget via "timeBudgetMs" in the request body, never a longer one.
+ */
+class RequestBudget {
+
+    static final long DEFAULT_BUDGET_MS = EnvConfig.getLong("ESTIMATE_BUDGET_MS", 20_000L);
+
+    // Smallest budget a client can request, and the least time worth starting a call with
+    private static final long MIN_BUDGET_MS = 1_000L;
+    private static final long MIN_CALL_MS = 250L;
+
+    private final long deadlineMillis;
+
+    private RequestBudget(long budgetMs) {
+        this.deadlineMillis = System.currentTimeMillis() + budgetMs;
+    }
+
+    /**
+     * @param requestedMs client-supplied budget, or null to use the configured default
+     */
+    static RequestBudget start(Integer requestedMs) {
+        long budgetMs = DEFAULT_BUDGET_MS;
+        if (requestedMs != null && requestedMs > 0) {
+            budgetMs = Math.max(MIN_BUDGET_MS, Math.min(DEFAULT_BUDGET_MS, requestedMs));
+        }
+        return new RequestBudget(budgetMs);
+    }
+
+    long remainingMillis() {
+        return Math.max(0, deadlineMillis - System.currentTimeMillis());
+    }
+
+    boolean isExhausted() {
+        return remainingMillis() < MIN_CALL_MS;
+    }
+
+    /**
+     * Sets connect and read timeouts so together they fit in the remaining budget:
+     * connect gets at most half of it, read gets what connect leaves over.
+     * Throws if there isn't enough budget left to start the call at all.
+     *
+     * The read timeout applies per blocking read, so a response that trickles in can
+     * still overrun; callers check isExhausted() afterwards.
+     */
+    /**
+     * A sub-budget of at most {@code fraction} of what's left, for calls whose failure is
+     * tolerated so they can't starve the ones the result depends on.
+     */
+    RequestBudget share(double fraction) {
+        return new RequestBudget((long) (remainingMillis() * fraction));
+    }
+
+    void applyTimeouts(HttpURLConnection conn, int defaultTimeoutMs) throws IOException {
+        long remaining = remainingMillis();
+        if (remaining < MIN_CALL_MS) {
+            throw new IOException("Estimate time budget exhausted");
+        }
+        int connectMs = (int) Math.min(defaultTimeoutMs, remaining / 2);
+        int readMs = (int) Math.min(defaultTimeoutMs, remaining - connectMs);
+        conn.setConnectTimeout(connectMs);
+        conn.setReadTimeout(readMs);
+    }
+}
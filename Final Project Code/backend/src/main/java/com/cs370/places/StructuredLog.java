@@ -0,0 +1,66 @@
+package com.cs370.places;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking JSON-lines logger.
+ *
+ * Request threads only offer() onto a bounded queue; a single daemon thread writes the
+ * lines to stdout (which Tomcat/Render capture). When the queue is full, events are dropped
+ * and counted instead of stalling the request.
+ */
+class StructuredLog {
+
+    private static final Gson gson = new Gson();
+
+    private static final int QUEUE_CAPACITY = 10_000;
+
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(StructuredLog::drain, "structured-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private StructuredLog() {}
+
+    /**
+     * Queues one event. Adds "ts" and "event" fields; never blocks.
+     */
+    static void emit(String event, JsonObject fields) {
+        fields.addProperty("ts", System.currentTimeMillis());
+        fields.addProperty("event", event);
+        if (!queue.offer(gson.toJson(fields))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    static long droppedCount() {
+        return dropped.get();
+    }
+
+    private static void drain() {
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                String line = queue.take();
+                System.out.println(line);
+
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    System.out.println("{\"event\":\"log_dropped\",\"total\":" + drops + "}");
+                    reportedDrops = drops;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -25,12 +25,16 @@ import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 
+import java.util.concurrent.Callable;
+
 //@WebServlet("/api/trip/estimate")
 public class TripEstimateServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
 
     private static final Gson gson = new Gson();
 
+    private transient PrefetchScheduler prefetcher;
+
     // ✅ Server-side only (Routes + Geocoding + Weather must be enabled on this key/project)
     private static final String API_KEY = System.getenv("GOOGLE_MAPS_API_KEY");
 
@@ -39,8 +43,51 @@ public class TripEstimateServlet extends HttpServlet {
     private static final String LGA_LATLNG = "40.7769271,-73.8739659";
     private static final String EWR_LATLNG = "40.6895314,-74.1744624";
 
+    // Departure times within the same 5 minutes share one cached route
+    private static final long ROUTES_BUCKET_MILLIS = 5 * 60_000L;
+
+    // Route predictions stay cached until their departure passes (at least 30 min, at most 12h)
+    private static final long ROUTES_MIN_TTL_MILLIS = 30 * 60_000L;
+    private static final long ROUTES_MAX_TTL_MILLIS = 12 * 60 * 60_000L;
+
+    // Share of the remaining budget the weather lookup may use; estimates go on without it
+    private static final double WEATHER_BUDGET_SHARE = 0.25;
+
+    // Subtracted from the departure time when the budget runs out mid-search
+    private static final int SAFETY_MARGIN_MINUTES = EnvConfig.getInt("ESTIMATE_SAFETY_MARGIN_MINUTES", 10);
+
+    @Override
+    public void init() {
+        // Prefetch calls are background work: no request budget beyond the default, never traced,
+        // never hedged (their tail latency doesn't matter and they'd spend live calls' hedge budget)
+        prefetcher = new PrefetchScheduler((departMillis, originKey, destLatLng) ->
+                routesDurationMinutes(departMillis, originKey, destLatLng, RequestBudget.start(null), UpstreamTrace.none(), false));
+        prefetcher.start();
+    }
+
+    @Override
+    public void destroy() {
+        if (prefetcher != null) prefetcher.stop();
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        UpstreamTrace trace = UpstreamTrace.start(request.getHeader(UpstreamTrace.DEBUG_REQUEST_HEADER));
+
+        // Bodies are small; a roomy buffer keeps the response uncommitted so the debug header can still be set
+        response.setBufferSize(16 * 1024);
+        try {
+            estimate(request, response, trace);
+        } finally {
+            if (trace.wantsDebugHeader() && !response.isCommitted()) {
+                response.setHeader(UpstreamTrace.DEBUG_RESPONSE_HEADER, trace.toHeaderValue());
+            }
+            trace.finish(response.getStatus());
+        }
+    }
+
+    private void estimate(HttpServletRequest request, HttpServletResponse response, UpstreamTrace trace)
+            throws IOException {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
@@ -68,6 +115,9 @@ public class TripEstimateServlet extends HttpServlet {
         String arrivalDate = getString(body, "arrivalDate");
         String arrivalTime = getString(body, "arrivalTime");
 
+        // ✅ One deadline for every upstream call this request makes
+        RequestBudget budget = RequestBudget.start(getInt(body, "timeBudgetMs"));
+
         // =========================
         // ✅ WEATHER PREVIEW MODE
         // =========================
@@ -97,7 +147,7 @@ public class TripEstimateServlet extends HttpServlet {
             String weatherSummary = "Weather unavailable";
 
             try {
-                WeatherResult wx = weatherAtDestinationTime(desiredArrivalMillis, destLatLng);
+                WeatherResult wx = weatherAtDestinationTime(desiredArrivalMillis, destLatLng, budget, trace);
                 weatherExtraMinutes = wx.extraMinutes;
                 weatherSummary = wx.summary;
             } catch (Exception ignored) {
@@ -179,7 +229,8 @@ public class TripEstimateServlet extends HttpServlet {
 
         if (useWeatherApi) {
             try {
-                WeatherResult wx = weatherAtDestinationTime(desiredArrivalMillis, destLatLng);
+                WeatherResult wx = weatherAtDestinationTime(desiredArrivalMillis, destLatLng,
+                        budget.share(WEATHER_BUDGET_SHARE), trace);
                 weatherExtraMinutes = wx.extraMinutes;
                 weatherSummary = wx.summary;
             } catch (Exception ex) {
@@ -199,8 +250,13 @@ public class TripEstimateServlet extends HttpServlet {
         if (targetArrivalAdjustedMillis <= nowMillis) {
             int nowBaseTravelMinutes;
             try {
-                nowBaseTravelMinutes = routesDurationMinutes(nowMillis, selectedPlaceId, fromAddressText, destLatLng);
+                nowBaseTravelMinutes = routesDurationMinutes(nowMillis, selectedPlaceId, fromAddressText, destLatLng, budget, trace);
             } catch (Exception ex) {
+                if (budget.isExhausted()) {
+                    response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    response.getWriter().print("{\"error\":\"Estimate timed out before any route was computed\"}");
+                    return;
+                }
                 response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
                 response.getWriter().print("{\"error\":\"Estimate failed (leave-now): " + escapeJson(ex.getMessage()) + "\"}");
                 return;
@@ -211,6 +267,7 @@ public class TripEstimateServlet extends HttpServlet {
             JsonObject out = new JsonObject();
             out.addProperty("recommendedLeaveDateTime", Instant.ofEpochMilli(nowMillis).toString());
             out.addProperty("arrivalDateTime", Instant.ofEpochMilli(desiredArrivalMillis).toString());
+            out.addProperty("approximate", false);
 
             JsonObject breakdown = new JsonObject();
             breakdown.addProperty("baseTravelMinutes", nowBaseTravelMinutes);
@@ -226,16 +283,46 @@ public class TripEstimateServlet extends HttpServlet {
 
         // Binary search best depart time in [now, targetArrivalAdjusted]
         try {
+            // Resolve the origin once; every probe reuses it. Geocoding it can use up the budget too.
+            String originKey;
+            try {
+                originKey = originKey(selectedPlaceId, fromAddressText, budget, trace);
+            } catch (IOException ex) {
+                if (!budget.isExhausted()) throw ex;
+                response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                response.getWriter().print("{\"error\":\"Estimate timed out before any route was computed\"}");
+                return;
+            }
+
             long lo = nowMillis;
             long hi = targetArrivalAdjustedMillis;
 
             int bestBaseTravelMinutes = -1;
             long bestDepartMillis = lo;
 
+            // Set when the budget runs out before the search converges
+            boolean approximate = false;
+            int lastDurMin = -1;
+
             for (int i = 0; i < 22; i++) {
-                long mid = lo + (hi - lo) / 2;
+                if (budget.isExhausted()) {
+                    approximate = true;
+                    break;
+                }
 
-                int durMin = routesDurationMinutes(mid, selectedPlaceId, fromAddressText, destLatLng);
+                long mid = lo + (hi - lo) / 2;
+                trace.iteration(i);
+
+                int durMin;
+                try {
+                    durMin = routesDurationMinutes(mid, originKey, destLatLng, budget, trace, true);
+                } catch (IOException ex) {
+                    // Out of time: keep the best feasible departure found so far
+                    if (!budget.isExhausted()) throw ex;
+                    approximate = true;
+                    break;
+                }
+                lastDurMin = durMin;
                 long arriveMid = mid + durMin * 60_000L;
 
                 if (arriveMid > targetArrivalAdjustedMillis) {
@@ -245,24 +332,55 @@ public class TripEstimateServlet extends HttpServlet {
                     bestDepartMillis = mid;
                     bestBaseTravelMinutes = durMin;
                 }
+
+                // Per-read timeouts can let a call overrun the deadline; its result still counts
+                if (budget.isExhausted() && i < 21) {
+                    approximate = true;
+                    break;
+                }
             }
 
+            trace.iteration(-1);
+
             if (bestBaseTravelMinutes < 0) {
                 bestDepartMillis = nowMillis;
-                bestBaseTravelMinutes = routesDurationMinutes(nowMillis, selectedPlaceId, fromAddressText, destLatLng);
+                if (!approximate) {
+                    bestBaseTravelMinutes = routesDurationMinutes(nowMillis, originKey, destLatLng, budget, trace, true);
+                } else if (lastDurMin >= 0) {
+                    // Every probe so far was too late, so leaving now is the best we can say
+                    bestBaseTravelMinutes = lastDurMin;
+                } else {
+                    response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    response.getWriter().print("{\"error\":\"Estimate timed out before any route was computed\"}");
+                    return;
+                }
             }
 
-            int totalMinutes = bestBaseTravelMinutes + cabBufferMinutesUsed + weatherExtraMinutes;
+            // Unconverged search: pad the departure with a conservative margin (never before now)
+            int safetyMarginMinutes = 0;
+            if (approximate) {
+                long paddedDepartMillis = Math.max(nowMillis, bestDepartMillis - SAFETY_MARGIN_MINUTES * 60_000L);
+                safetyMarginMinutes = (int) ((bestDepartMillis - paddedDepartMillis) / 60_000L);
+                bestDepartMillis = paddedDepartMillis;
+            }
+
+            if (!approximate && prefetcher != null) {
+                prefetcher.recordDemand(originKey, destLatLng, targetArrivalAdjustedMillis, bestBaseTravelMinutes);
+            }
+
+            int totalMinutes = bestBaseTravelMinutes + cabBufferMinutesUsed + weatherExtraMinutes + safetyMarginMinutes;
 
             JsonObject out = new JsonObject();
             out.addProperty("recommendedLeaveDateTime", Instant.ofEpochMilli(bestDepartMillis).toString());
             out.addProperty("arrivalDateTime", Instant.ofEpochMilli(desiredArrivalMillis).toString());
+            out.addProperty("approximate", approximate);
 
             JsonObject breakdown = new JsonObject();
             breakdown.addProperty("baseTravelMinutes", bestBaseTravelMinutes);
             breakdown.addProperty("cabBufferMinutes", cabBufferMinutesUsed);
             breakdown.addProperty("weatherExtraMinutes", weatherExtraMinutes);
             breakdown.addProperty("weatherSummary", weatherSummary);
+            if (approximate) breakdown.addProperty("safetyMarginMinutes", safetyMarginMinutes);
             breakdown.addProperty("totalMinutes", totalMinutes);
             out.add("breakdown", breakdown);
 
@@ -282,7 +400,6 @@ public class TripEstimateServlet extends HttpServlet {
             String line;
             while ((line = br.readLine()) != null) sb.append(line);
         }
-        System.out.println("TripEstimateServlet RAW BODY = " + sb.toString());
         return gson.fromJson(sb.toString(), JsonObject.class);
     }
 
@@ -374,21 +491,44 @@ public class TripEstimateServlet extends HttpServlet {
 
     /**
      * Routes API: computeRoutes (traffic-aware).
+     * Connect and read timeouts share what's left of the request budget.
      */
-    private int routesDurationMinutes(long departMillis, String selectedPlaceId, String fromAddressText, String destLatLng)
-            throws IOException {
-
-        String urlStr = "https://routes.googleapis.com/directions/v2:computeRoutes";
-        HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
+    private int routesDurationMinutes(long departMillis, String selectedPlaceId, String fromAddressText, String destLatLng,
+                                      RequestBudget budget, UpstreamTrace trace) throws IOException {
+        String originKey = originKey(selectedPlaceId, fromAddressText, budget, trace);
+        return routesDurationMinutes(departMillis, originKey, destLatLng, budget, trace, true);
+    }
 
-        conn.setRequestMethod("POST");
-        conn.setConnectTimeout(7000);
-        conn.setReadTimeout(7000);
-        conn.setDoOutput(true);
+    /**
+     * Stable origin identity shared by the routes cache key and the request waypoint:
+     * "pid:<Google place id>" or "ll:<lat>,<lng>" for local-index and geocoded origins.
+     */
+    private String originKey(String selectedPlaceId, String fromAddressText, RequestBudget budget, UpstreamTrace trace)
+            throws IOException {
+        // Suggestions from the offline index carry "local:" ids we resolve without Google
+        double[] localLatLng = LocalPlaceIndex.get().latLng(selectedPlaceId);
+
+        if (localLatLng != null) {
+            return "ll:" + localLatLng[0] + "," + localLatLng[1];
+        } else if (selectedPlaceId != null && !selectedPlaceId.isBlank()
+                && !selectedPlaceId.startsWith(LocalPlaceIndex.ID_PREFIX)) {
+            return "pid:" + selectedPlaceId;
+        } else {
+            double[] originLatLng = geocodeToLatLng(fromAddressText, budget, trace);
+            return "ll:" + originLatLng[0] + "," + originLatLng[1];
+        }
+    }
 
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("X-Goog-Api-Key", API_KEY);
-        conn.setRequestProperty("X-Goog-FieldMask", "routes.duration");
+    /**
+     * @param hedge false for background calls, which run once and stay out of the hedger's stats
+     */
+    private int routesDurationMinutes(long departMillis, String originKey, String destLatLng,
+                                      RequestBudget budget, UpstreamTrace trace, boolean hedge) throws IOException {
+        String cacheKey = routesCacheKey(originKey, destLatLng, departMillis);
+        String cached = UpstreamCache.ROUTES.get(cacheKey);
+        if (cached != null) {
+            return Integer.parseInt(cached);
+        }
 
         String departureTimeRfc3339 = Instant.ofEpochMilli(departMillis).toString();
 
@@ -398,12 +538,12 @@ public class TripEstimateServlet extends HttpServlet {
         String lng = parts[1].trim();
 
         String originWaypointJson;
-        if (selectedPlaceId != null && !selectedPlaceId.isBlank()) {
-            originWaypointJson = "{ \"placeId\": \"" + escapeJson(selectedPlaceId) + "\" }";
+        if (originKey.startsWith("pid:")) {
+            originWaypointJson = "{ \"placeId\": \"" + escapeJson(originKey.substring(4)) + "\" }";
         } else {
-            double[] originLatLng = geocodeToLatLng(fromAddressText);
+            String[] origin = originKey.substring(3).split(",");
             originWaypointJson =
-                    "{ \"location\": { \"latLng\": { \"latitude\": " + originLatLng[0] + ", \"longitude\": " + originLatLng[1] + " } } }";
+                    "{ \"location\": { \"latLng\": { \"latitude\": " + origin[0] + ", \"longitude\": " + origin[1] + " } } }";
         }
 
         String destinationWaypointJson =
@@ -418,14 +558,24 @@ public class TripEstimateServlet extends HttpServlet {
                         + "\"departureTime\":\"" + departureTimeRfc3339 + "\""
                         + "}";
 
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(payload.getBytes(StandardCharsets.UTF_8));
-        }
+        String urlStr = "https://routes.googleapis.com/directions/v2:computeRoutes";
+
+        // Each attempt opens its own connection so a slow call can be hedged
+        int iteration = trace.currentIteration();
+        Callable<String> attempt = () -> {
+            HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
 
-        int code = conn.getResponseCode();
-        String resp;
-        if (code >= 200 && code < 300) resp = readAll(conn);
-        else throw new IOException("Routes API error " + code + ": " + readAllError(conn));
+            conn.setRequestMethod("POST");
+            budget.applyTimeouts(conn, 7000);
+            conn.setDoOutput(true);
+
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setRequestProperty("X-Goog-Api-Key", API_KEY);
+            conn.setRequestProperty("X-Goog-FieldMask", "routes.duration");
+
+            return send(conn, payload, "routes", iteration, departMillis, trace, "Routes API error");
+        };
+        String resp = hedge ? UpstreamHedger.call("routes", attempt) : UpstreamHedger.direct(attempt);
 
         JsonObject json = gson.fromJson(resp, JsonObject.class);
         if (json == null || !json.has("routes") || json.getAsJsonArray("routes").size() == 0) {
@@ -438,13 +588,23 @@ public class TripEstimateServlet extends HttpServlet {
 
         long seconds = Long.parseLong(durStr.replace("s", "").trim());
         long minutes = (seconds + 59) / 60;
+        long ttl = Math.min(ROUTES_MAX_TTL_MILLIS,
+                Math.max(ROUTES_MIN_TTL_MILLIS, departMillis + ROUTES_BUCKET_MILLIS - System.currentTimeMillis()));
+        UpstreamCache.ROUTES.put(cacheKey, Long.toString(minutes), ttl);
         return (int) minutes;
     }
 
+    /**
+     * Probes within the same 5-minute departure bucket share one cached duration.
+     */
+    static String routesCacheKey(String originKey, String destLatLng, long departMillis) {
+        return originKey + "|" + destLatLng + "|" + (departMillis / ROUTES_BUCKET_MILLIS);
+    }
+
     /**
      * Geocoding fallback for free-text origin.
      */
-    private double[] geocodeToLatLng(String address) throws IOException {
+    private double[] geocodeToLatLng(String address, RequestBudget budget, UpstreamTrace trace) throws IOException {
         if (address == null || address.trim().isEmpty()) {
             throw new IOException("Cannot geocode empty address");
         }
@@ -454,6 +614,13 @@ public class TripEstimateServlet extends HttpServlet {
             address = address + ", NY";
         }
 
+        String cacheKey = address.toLowerCase();
+        String cached = UpstreamCache.GEOCODE.get(cacheKey);
+        if (cached != null) {
+            String[] ll = cached.split(",");
+            return new double[] { Double.parseDouble(ll[0]), Double.parseDouble(ll[1]) };
+        }
+
         String encoded = URLEncoder.encode(address, StandardCharsets.UTF_8);
         String urlStr =
                 "https://maps.googleapis.com/maps/api/geocode/json?address=" + encoded +
@@ -461,16 +628,14 @@ public class TripEstimateServlet extends HttpServlet {
                         "&region=us" +
                         "&key=" + API_KEY;
 
-        HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
-        conn.setRequestMethod("GET");
-        conn.setConnectTimeout(7000);
-        conn.setReadTimeout(7000);
+        int iteration = trace.currentIteration();
+        String resp = UpstreamHedger.call("geocode", () -> {
+            HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
+            conn.setRequestMethod("GET");
+            budget.applyTimeouts(conn, 7000);
 
-        int code = conn.getResponseCode();
-        String resp = (code >= 200 && code < 300) ? readAll(conn) : readAllError(conn);
-        if (code < 200 || code >= 300) {
-            throw new IOException("Geocoding API HTTP " + code + ": " + resp);
-        }
+            return send(conn, null, "geocode", iteration, -1, trace, "Geocoding API HTTP");
+        });
 
         JsonObject json = gson.fromJson(resp, JsonObject.class);
 
@@ -492,7 +657,9 @@ public class TripEstimateServlet extends HttpServlet {
                 .getAsJsonObject("geometry")
                 .getAsJsonObject("location");
 
-        return new double[] { loc.get("lat").getAsDouble(), loc.get("lng").getAsDouble() };
+        double[] latLng = { loc.get("lat").getAsDouble(), loc.get("lng").getAsDouble() };
+        UpstreamCache.GEOCODE.put(cacheKey, latLng[0] + "," + latLng[1]);
+        return latLng;
     }
 
     // -------- Weather API integration --------
@@ -510,7 +677,8 @@ public class TripEstimateServlet extends HttpServlet {
      * Uses Google Weather API hourly forecast.
      * Maps to your buckets: Clear / Light rain / Heavy rain / Snow or ice / Severe weather
      */
-    private WeatherResult weatherAtDestinationTime(long desiredArrivalMillis, String destLatLng) throws IOException {
+    private WeatherResult weatherAtDestinationTime(long desiredArrivalMillis, String destLatLng, RequestBudget budget,
+                                                   UpstreamTrace trace) throws IOException {
         String[] parts = destLatLng.split(",");
         String lat = parts[0].trim();
         String lng = parts[1].trim();
@@ -523,6 +691,14 @@ public class TripEstimateServlet extends HttpServlet {
 
         int hoursToFetch = Math.min(240, Math.max(1, hourOffset + 1));
 
+        // Keyed by the absolute forecast hour so every request for that hour shares it
+        String cacheKey = destLatLng + "|" + (now / 3_600_000L + hourOffset);
+        String cached = UpstreamCache.WEATHER.get(cacheKey);
+        if (cached != null) {
+            int sep = cached.indexOf('|');
+            return new WeatherResult(Integer.parseInt(cached.substring(0, sep)), cached.substring(sep + 1));
+        }
+
         String urlStr =
                 "https://weather.googleapis.com/v1/forecast/hours:lookup"
                         + "?location.latitude=" + URLEncoder.encode(lat, StandardCharsets.UTF_8)
@@ -530,16 +706,14 @@ public class TripEstimateServlet extends HttpServlet {
                         + "&hours=" + hoursToFetch
                         + "&key=" + URLEncoder.encode(API_KEY, StandardCharsets.UTF_8);
 
-        HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
-        conn.setRequestMethod("GET");
-        conn.setConnectTimeout(7000);
-        conn.setReadTimeout(7000);
+        int iteration = trace.currentIteration();
+        String resp = UpstreamHedger.call("weather", () -> {
+            HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
+            conn.setRequestMethod("GET");
+            budget.applyTimeouts(conn, 7000);
 
-        int code = conn.getResponseCode();
-        String resp = (code >= 200 && code < 300) ? readAll(conn) : readAllError(conn);
-        if (code < 200 || code >= 300) {
-            throw new IOException("Weather API error " + code + ": " + resp);
-        }
+            return send(conn, null, "weather", iteration, -1, trace, "Weather API error");
+        });
 
         JsonObject json = gson.fromJson(resp, JsonObject.class);
 
@@ -570,6 +744,7 @@ public class TripEstimateServlet extends HttpServlet {
         String summary = mapPrecipToSummary(precipType, precipChance);
         int extra = weatherExtraMinutes(summary);
 
+        UpstreamCache.WEATHER.put(cacheKey, extra + "|" + summary);
         return new WeatherResult(extra, summary);
     }
 
@@ -613,6 +788,36 @@ public class TripEstimateServlet extends HttpServlet {
 
     // -------- IO helpers --------
 
+    /**
+     * Writes the payload (if any), reads the response and records the call as a trace span
+     * under {@code iteration}, captured by the caller before the attempt was submitted.
+     * Returns the body on 2xx; otherwise throws "<errorLabel> <code>: <error body>".
+     */
+    private static String send(HttpURLConnection conn, String payload, String api, int iteration, long departMillis,
+                               UpstreamTrace trace, String errorLabel) throws IOException {
+        long started = System.nanoTime();
+        int code = -1;
+        String resp = null;
+        try {
+            if (payload != null) {
+                try (OutputStream os = conn.getOutputStream()) {
+                    os.write(payload.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            code = conn.getResponseCode();
+            resp = (code >= 200 && code < 300) ? readAll(conn) : readAllError(conn);
+        } catch (IOException e) {
+            trace.record(api, iteration, departMillis, code, resp, started, e);
+            throw e;
+        }
+        trace.record(api, iteration, departMillis, code, resp, started, null);
+
+        if (code < 200 || code >= 300) {
+            throw new IOException(errorLabel + " " + code + ": " + resp);
+        }
+        return resp;
+    }
+
     private static String readAll(HttpURLConnection conn) throws IOException {
         try (BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
             StringBuilder sb = new StringBuilder();
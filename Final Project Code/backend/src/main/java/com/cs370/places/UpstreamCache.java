@@ -0,0 +1,108 @@
+package com.cs370.places;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small LRU + TTL caches in front of the Google APIs, one per kind of lookup.
+ *
+ * Keys and values are plain strings so CacheSnapshot can persist them across restarts
+ * without knowing what they mean.
+ */
+class UpstreamCache {
+
+    private static final long MINUTE = 60_000L;
+
+    // address -> "lat,lng"
+    static final UpstreamCache GEOCODE = new UpstreamCache("geocode", 20_000, 30L * 24 * 60 * MINUTE);
+    // origin|dest|5-minute departure bucket -> minutes (TTL set per entry by TripEstimateServlet)
+    static final UpstreamCache ROUTES = new UpstreamCache("routes", 50_000, 30 * MINUTE);
+    // dest|forecast hour -> "extraMinutes|summary"
+    static final UpstreamCache WEATHER = new UpstreamCache("weather", 2_000, 30 * MINUTE);
+    // normalized query -> Google suggestion items (comma-separated JSON objects)
+    static final UpstreamCache SUGGESTIONS = new UpstreamCache("suggestion-items", 20_000, 24 * 60 * MINUTE);
+
+    static final List<UpstreamCache> ALL = Collections.unmodifiableList(Arrays.asList(GEOCODE, ROUTES, WEATHER, SUGGESTIONS));
+
+    static class Entry {
+        final String value;
+        final long expiresAtMillis;
+
+        Entry(String value, long expiresAtMillis) {
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final String name;
+    private final long ttlMillis;
+    private final Map<String, Entry> map;
+
+    private UpstreamCache(String name, int maxEntries, long ttlMillis) {
+        this.name = name;
+        this.ttlMillis = ttlMillis;
+        this.map = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Cached value, or null if missing or expired.
+     */
+    synchronized String get(String key) {
+        Entry e = map.get(key);
+        if (e == null) return null;
+        if (e.expiresAtMillis <= System.currentTimeMillis()) {
+            map.remove(key);
+            return null;
+        }
+        return e.value;
+    }
+
+    void put(String key, String value) {
+        put(key, value, ttlMillis);
+    }
+
+    synchronized void put(String key, String value, long ttlMillis) {
+        map.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * Restores an entry read from a snapshot, keeping its original expiry.
+     */
+    synchronized void restore(String key, String value, long expiresAtMillis) {
+        if (expiresAtMillis > System.currentTimeMillis()) {
+            map.put(key, new Entry(value, expiresAtMillis));
+        }
+    }
+
+    /**
+     * Copy of the live (unexpired) entries, for snapshotting.
+     */
+    synchronized List<Map.Entry<String, Entry>> liveEntries() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, Entry>> out = new ArrayList<>(map.size());
+        for (Map.Entry<String, Entry> e : map.entrySet()) {
+            if (e.getValue().expiresAtMillis > now) out.add(Map.entry(e.getKey(), e.getValue()));
+        }
+        return out;
+    }
+
+    static UpstreamCache byName(String name) {
+        for (UpstreamCache c : ALL) {
+            if (c.name.equals(name)) return c;
+        }
+        return null;
+    }
+}
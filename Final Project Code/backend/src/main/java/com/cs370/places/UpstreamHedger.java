@@ -0,0 +1,215 @@
+package com.cs370.places;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional request hedging for idempotent upstream calls (computeRoutes, geocode, weather,
+ * autocomplete).
+ *
+ * If an attempt hasn't answered within the tracked latency percentile for its API, an
+ * identical second attempt is sent and whichever succeeds first wins. The loser is left to
+ * finish on its own timeouts. A global token bucket caps hedges at a fraction of recent
+ * primary calls, and per-API counts are logged once a minute.
+ *
+ * Config:
+ *   UPSTREAM_HEDGING_ENABLED  "true" to hedge; otherwise calls run directly (default off)
+ *   HEDGE_PERCENTILE          latency percentile that triggers a hedge (default 95)
+ *   HEDGE_BUDGET_RATIO        max hedges as a fraction of primary calls (default 0.05)
+ */
+class UpstreamHedger {
+
+    private static final boolean ENABLED = EnvConfig.getBool("UPSTREAM_HEDGING_ENABLED");
+    private static final double PERCENTILE = EnvConfig.getDouble("HEDGE_PERCENTILE", 95);
+    private static final double BUDGET_RATIO = EnvConfig.getDouble("HEDGE_BUDGET_RATIO", 0.05);
+
+    // Don't hedge on a percentile computed from too few samples
+    private static final int MIN_SAMPLES = 20;
+    private static final int WINDOW_SIZE = 256;
+
+    // Hedge tokens saved up while calls are fast; keeps a burst of slow calls from all hedging
+    private static final double MAX_HEDGE_TOKENS = 2.0;
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "upstream-hedge");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final AtomicLong totalPrimaries = new AtomicLong();
+    private static final AtomicLong totalHedges = new AtomicLong();
+
+    // Each primary adds BUDGET_RATIO, each hedge spends 1; guarded by UpstreamHedger.class
+    private static double hedgeTokens;
+    private static final Map<String, ApiStats> stats = new ConcurrentHashMap<>();
+
+    static {
+        if (ENABLED) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "upstream-hedge-report");
+                t.setDaemon(true);
+                return t;
+            });
+            reporter.scheduleWithFixedDelay(UpstreamHedger::report, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Recent successful latencies and hedge counters for one API.
+     */
+    private static class ApiStats {
+        private final long[] latenciesMs = new long[WINDOW_SIZE];
+        private int next;
+        private int filled;
+
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong hedges = new AtomicLong();
+        final AtomicLong hedgeWins = new AtomicLong();
+
+        synchronized void recordLatency(long ms) {
+            latenciesMs[next] = ms;
+            next = (next + 1) % WINDOW_SIZE;
+            if (filled < WINDOW_SIZE) filled++;
+        }
+
+        /**
+         * Hedge delay in ms, or -1 while there aren't enough samples yet.
+         */
+        synchronized long percentileMs() {
+            if (filled < MIN_SAMPLES) return -1;
+            long[] sorted = Arrays.copyOf(latenciesMs, filled);
+            Arrays.sort(sorted);
+            int idx = (int) Math.ceil(PERCENTILE / 100.0 * filled) - 1;
+            return sorted[Math.max(0, Math.min(filled - 1, idx))];
+        }
+    }
+
+    private static class Attempt<T> {
+        final T value;
+        final boolean hedge;
+
+        Attempt(T value, boolean hedge) {
+            this.value = value;
+            this.hedge = hedge;
+        }
+    }
+
+    private UpstreamHedger() {}
+
+    /**
+     * Runs {@code attempt}, hedging it if enabled and it's slower than usual.
+     * The attempt must be safe to run twice concurrently.
+     */
+    static <T> T call(String api, Callable<T> attempt) throws IOException {
+        if (!ENABLED) return direct(attempt);
+
+        ApiStats s = stats.computeIfAbsent(api, k -> new ApiStats());
+        s.calls.incrementAndGet();
+        totalPrimaries.incrementAndGet();
+        addHedgeToken();
+
+        ExecutorCompletionService<Attempt<T>> ecs = new ExecutorCompletionService<>(pool);
+        ecs.submit(timed(s, attempt, false));
+        int inFlight = 1;
+
+        try {
+            Future<Attempt<T>> first = null;
+            long delay = s.percentileMs();
+            if (delay >= 0) {
+                first = ecs.poll(delay, TimeUnit.MILLISECONDS);
+                if (first == null && tryAcquireHedge()) {
+                    s.hedges.incrementAndGet();
+                    ecs.submit(timed(s, attempt, true));
+                    inFlight++;
+                }
+            }
+
+            // First success wins; only fail once every attempt has failed
+            ExecutionException failure = null;
+            while (inFlight > 0) {
+                Future<Attempt<T>> done = (first != null) ? first : ecs.take();
+                first = null;
+                inFlight--;
+                try {
+                    Attempt<T> a = done.get();
+                    if (a.hedge) s.hedgeWins.incrementAndGet();
+                    return a.value;
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            Throwable cause = failure.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + api, e);
+        }
+    }
+
+    /**
+     * Runs {@code attempt} once on the calling thread: no hedge, no latency sample, no budget.
+     * For background work that shouldn't compete with live requests.
+     */
+    static <T> T direct(Callable<T> attempt) throws IOException {
+        try {
+            return attempt.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static <T> Callable<Attempt<T>> timed(ApiStats s, Callable<T> attempt, boolean hedge) {
+        return () -> {
+            long started = System.nanoTime();
+            T value = attempt.call();
+            s.recordLatency((System.nanoTime() - started) / 1_000_000L);
+            return new Attempt<>(value, hedge);
+        };
+    }
+
+    private static synchronized void addHedgeToken() {
+        hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + BUDGET_RATIO);
+    }
+
+    private static synchronized boolean tryAcquireHedge() {
+        if (hedgeTokens < 1.0) return false;
+        hedgeTokens -= 1.0;
+        totalHedges.incrementAndGet();
+        return true;
+    }
+
+    private static void report() {
+        if (stats.isEmpty()) return;
+        JsonObject ev = new JsonObject();
+        ev.addProperty("primaries", totalPrimaries.get());
+        ev.addProperty("hedges", totalHedges.get());
+        JsonObject apis = new JsonObject();
+        for (Map.Entry<String, ApiStats> e : stats.entrySet()) {
+            JsonObject o = new JsonObject();
+            o.addProperty("calls", e.getValue().calls.get());
+            o.addProperty("hedges", e.getValue().hedges.get());
+            o.addProperty("hedgeWins", e.getValue().hedgeWins.get());
+            o.addProperty("hedgeDelayMs", e.getValue().percentileMs());
+            apis.add(e.getKey(), o);
+        }
+        ev.add("apis", apis);
+        StructuredLog.emit("upstream_hedging", ev);
+    }
+}
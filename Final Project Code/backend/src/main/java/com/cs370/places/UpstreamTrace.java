@@ -0,0 +1,165 @@
+package com.cs370.places;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-request record of every upstream call an estimate makes.
+ *
+ * Each span holds the API, the binary-search iteration it belonged to, the departure time
+ * probed, HTTP status, response bytes and duration. Sampled traces are written through
+ * StructuredLog when the request finishes; unsampled ones skip all bookkeeping.
+ *
+ * Config:
+ *   TRACE_SAMPLE_RATE   fraction of estimates traced, 0..1 (default 0.01)
+ *   TRACE_DEBUG_HEADER  "true" lets clients send X-Debug-Trace: 1 to force a trace and get
+ *                       a summary back in the X-Upstream-Trace response header (default off)
+ */
+class UpstreamTrace {
+
+    static final String DEBUG_REQUEST_HEADER = "X-Debug-Trace";
+    static final String DEBUG_RESPONSE_HEADER = "X-Upstream-Trace";
+
+    private static final double SAMPLE_RATE = EnvConfig.getDouble("TRACE_SAMPLE_RATE", 0.01);
+    private static final boolean DEBUG_HEADER_ENABLED = EnvConfig.getBool("TRACE_DEBUG_HEADER");
+
+    // Keep the debug header well under typical proxy header limits
+    private static final int MAX_HEADER_CHARS = 4000;
+
+    private static class Span {
+        final String api;
+        final int iteration;
+        final long departMillis;
+        final int status;
+        final int bytes;
+        final long durationMs;
+        final String error;
+
+        Span(String api, int iteration, long departMillis, int status, int bytes, long durationMs, String error) {
+            this.api = api;
+            this.iteration = iteration;
+            this.departMillis = departMillis;
+            this.status = status;
+            this.bytes = bytes;
+            this.durationMs = durationMs;
+            this.error = error;
+        }
+    }
+
+    private final boolean sampled;
+    private final boolean debugHeader;
+    private final long startNanos = System.nanoTime();
+    private final List<Span> spans = new ArrayList<>();
+
+    // Binary-search iteration in progress; -1 outside the search. Only touched by the
+    // request thread: calls capture it before they're handed to the hedger's threads.
+    private int iteration = -1;
+
+    private UpstreamTrace(boolean sampled, boolean debugHeader) {
+        this.sampled = sampled;
+        this.debugHeader = debugHeader;
+    }
+
+    /**
+     * @param debugRequestHeader value of the X-Debug-Trace request header, may be null
+     */
+    static UpstreamTrace start(String debugRequestHeader) {
+        boolean debug = DEBUG_HEADER_ENABLED && "1".equals(debugRequestHeader);
+        boolean sampled = debug || (SAMPLE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE);
+        return new UpstreamTrace(sampled, debug);
+    }
+
+    /**
+     * A trace that records nothing, for background calls outside any request.
+     */
+    static UpstreamTrace none() {
+        return new UpstreamTrace(false, false);
+    }
+
+    boolean wantsDebugHeader() {
+        return debugHeader;
+    }
+
+    void iteration(int i) {
+        this.iteration = i;
+    }
+
+    int currentIteration() {
+        return iteration;
+    }
+
+    /**
+     * Records one upstream call.
+     *
+     * @param iteration    search iteration the call was made for, from currentIteration()
+     * @param departMillis departure time a routes call probed, -1 for other calls
+     * @param status       HTTP status, -1 if the call never got a response
+     * @param body         response body, used only for its size
+     * @param startedNanos System.nanoTime() taken just before the call
+     */
+    void record(String api, int iteration, long departMillis, int status, String body, long startedNanos, Exception error) {
+        if (!sampled) return;
+        long durationMs = (System.nanoTime() - startedNanos) / 1_000_000L;
+        int bytes = body == null ? 0 : body.getBytes(StandardCharsets.UTF_8).length;
+        String err = error == null ? null : error.getClass().getSimpleName() + ": " + error.getMessage();
+        synchronized (spans) {
+            spans.add(new Span(api, iteration, departMillis, status, bytes, durationMs, err));
+        }
+    }
+
+    /**
+     * Compact one-line summary for the debug response header, e.g.
+     * "routes#3 200 812B 341ms; geocode#-1 200 1204B 95ms".
+     */
+    String toHeaderValue() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (spans) {
+            for (Span s : spans) {
+                String item = s.api + "#" + s.iteration + " " + s.status + " " + s.bytes + "B " + s.durationMs + "ms";
+                if (sb.length() + item.length() + 2 > MAX_HEADER_CHARS) {
+                    sb.append("; ...");
+                    break;
+                }
+                if (sb.length() > 0) sb.append("; ");
+                sb.append(item);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Emits the trace as one structured log event if this request was sampled.
+     */
+    void finish(int httpStatus) {
+        if (!sampled) return;
+
+        JsonObject ev = new JsonObject();
+        ev.addProperty("status", httpStatus);
+        ev.addProperty("totalMs", (System.nanoTime() - startNanos) / 1_000_000L);
+
+        JsonArray arr = new JsonArray();
+        synchronized (spans) {
+            ev.addProperty("upstreamCalls", spans.size());
+            for (Span s : spans) {
+                JsonObject o = new JsonObject();
+                o.addProperty("api", s.api);
+                o.addProperty("iteration", s.iteration);
+                if (s.departMillis >= 0) o.addProperty("departureTime", Instant.ofEpochMilli(s.departMillis).toString());
+                o.addProperty("status", s.status);
+                o.addProperty("bytes", s.bytes);
+                o.addProperty("durationMs", s.durationMs);
+                if (s.error != null) o.addProperty("error", s.error);
+                arr.add(o);
+            }
+        }
+        ev.add("spans", arr);
+
+        StructuredLog.emit("trip_estimate_trace", ev);
+    }
+}
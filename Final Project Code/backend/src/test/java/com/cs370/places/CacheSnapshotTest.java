@@ -0,0 +1,59 @@
+package com.cs370.places;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CacheSnapshotTest {
+
+    @Test
+    void loadSkipsExpiredEntriesAndRestoresTheRest(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("cache.snap");
+
+        // Expired entry is written before the live ones, so a bad skip misreads everything after it
+        UpstreamCache.GEOCODE.put("test:expires", "1,1", 200);
+        UpstreamCache.GEOCODE.put("test:live", "40.7,-74.0");
+        UpstreamCache.ROUTES.put("test:route", "42");
+        CacheSnapshot.save(file);
+
+        Thread.sleep(300);
+        UpstreamCache.GEOCODE.put("test:live", "changed");
+        UpstreamCache.ROUTES.put("test:route", "changed");
+
+        CacheSnapshot.load(file);
+
+        assertNull(UpstreamCache.GEOCODE.get("test:expires"));
+        assertEquals("40.7,-74.0", UpstreamCache.GEOCODE.get("test:live"));
+        assertEquals("42", UpstreamCache.ROUTES.get("test:route"));
+    }
+
+    @Test
+    void saveKeepsOnlyTheNewestGeneration(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("cache.snap");
+        CacheSnapshot.save(file);
+        CacheSnapshot.save(file);
+
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void loadFallsBackToAnOlderGenerationWhenTheNewestIsCorrupt(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("cache.snap");
+        UpstreamCache.WEATHER.put("test:weather", "5|Light rain");
+        CacheSnapshot.save(file);
+        Files.write(dir.resolve("cache.snap." + Long.MAX_VALUE), new byte[] { 1, 2, 3 });
+
+        UpstreamCache.WEATHER.put("test:weather", "changed");
+        CacheSnapshot.load(file);
+
+        assertEquals("5|Light rain", UpstreamCache.WEATHER.get("test:weather"));
+    }
+}